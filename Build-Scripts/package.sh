@@ -0,0 +1,205 @@
+#!/usr/bin/env bash
+#
+# Packaging script for the fdmconfig utility, aimed at short runs where JVM startup and class loading
+# take a noticeable share of wall-clock time.
+#
+# Produces under build-output/ :
+#  -- fdmconfig-full.jar  : application classes, with the libraries (from Runnable-Jar/fdmconfig.jar) on Class-Path
+#  -- fdmconfig-slim.jar  : single jar holding only the classes loaded during a training run against the simulator,
+#                           with the licence files of the packaged libraries under META-INF/licenses/
+#  -- fdmconfig.jsa       : AppCDS archive for fdmconfig-slim.jar, dumped at the end of the training run
+#  -- fdmconfig (native)  : GraalVM native image, only when 'native-image' is found on PATH
+#
+# Each packaging option is then run against the simulator with '--timing' and the
+# "Startup to login complete" figure is reported.
+#
+# Usage:
+#   Build-Scripts/package.sh --vsphereip <simulator ip:port> --username <uname> --password <pwd> --clusterName <name>
+#
+# Example, with govmomi vcsim (vcsim -l 127.0.0.1:8989 -ds 3):
+#   Build-Scripts/package.sh --vsphereip 127.0.0.1:8989 --username user --password pass --clusterName DC0_C0
+#
+# The training run has to pass the pre-flight checks and go through the reconfigure path: the simulator cluster needs
+# HA enabled, hosts reporting an HA agent state (runtime.dasHostState), at least 3 accessible datastores shared by all
+# hosts and no advanced option set already (e.g. fresh 'vcsim -ds 3', then 'govc cluster.change -ha-enabled=true DC0_C0').
+# Otherwise the script fails, as classes only used while reconfiguring would be missing from the trace.
+#
+# Requires JDK 13 or later (dynamic AppCDS archive). vijava needs javax.xml.bind, which is no longer part of the
+# JDK since 11, so a JAXB API jar (e.g. javax.xml.bind:jaxb-api:2.3.1) has to be provided through JAXB_API_JAR.
+#
+# Environment:
+#   JAXB_API_JAR          : path to the JAXB API jar, packaged along with the other libraries
+#   TIMING_RUNS           : number of measured runs per packaging option (default 5)
+#   SLIM_KEEP_VIM25_TYPES : 1 (default) keeps all vim25 data object/fault and managed object classes in the slim jar,
+#                           0 keeps only what the training run loaded (smaller, but only safe for the traced flow)
+#
+
+set -euo pipefail
+
+if [ $# -lt 8 ]; then
+    sed -n '2,34p' "$0" | sed 's/^# \{0,1\}//'
+    exit 1
+fi
+
+if [ -z "${JAXB_API_JAR:-}" ] || [ ! -f "$JAXB_API_JAR" ]; then
+    echo "[Error] Set JAXB_API_JAR to the path of a JAXB API jar (javax.xml.bind), required by vijava on JDK 11+"
+    exit 1
+fi
+
+SIM_ARGS=("$@")
+TIMING_RUNS=${TIMING_RUNS:-5}
+SLIM_KEEP_VIM25_TYPES=${SLIM_KEEP_VIM25_TYPES:-1}
+
+ROOT_DIR=$(cd "$(dirname "$0")/.." && pwd)
+OUT_DIR=$ROOT_DIR/build-output
+LIB_DIR=$OUT_DIR/lib
+CLASSES_DIR=$OUT_DIR/classes
+SLIM_DIR=$OUT_DIR/slim
+NATIVE_CONFIG_DIR=$OUT_DIR/native-config
+NATIVE_VIM25_CONFIG_DIR=$OUT_DIR/native-config-vim25
+MAIN_CLASS=reconfigha.RunApp
+
+# Classes vijava resolves reflectively by name: vim25 data objects and faults while (de)serializing SOAP messages,
+# and managed objects (MorUtil creates com.vmware.vim25.mo.<type>) for references returned by the server. These only
+# show up when the server sends them, so a single training run can not be trusted to load all of them.
+# Unless SLIM_KEEP_VIM25_TYPES=0, everything from these two packages is kept in the slim jar.
+REFLECTIVE_KEEP_PATTERN='^com/vmware/vim25/(mo/)?[^/]*\.class$'
+if [ "$SLIM_KEEP_VIM25_TYPES" = "0" ]; then
+    REFLECTIVE_KEEP_PATTERN='^$'
+fi
+
+rm -rf "$OUT_DIR"
+mkdir -p "$LIB_DIR" "$CLASSES_DIR" "$SLIM_DIR" "$NATIVE_CONFIG_DIR" "$NATIVE_VIM25_CONFIG_DIR"
+
+echo "---- Extract libraries from Runnable-Jar/fdmconfig.jar"
+(cd "$LIB_DIR" && unzip -q -o "$ROOT_DIR/Runnable-Jar/fdmconfig.jar" 'dom4j-*.jar' 'vijava*.jar')
+cp "$JAXB_API_JAR" "$LIB_DIR"
+LIB_JARS=$(ls "$LIB_DIR"/*.jar)
+LIB_CP=$(echo "$LIB_JARS" | tr '\n' ':' | sed 's/:$//')
+
+echo "---- Compile sources"
+javac -cp "$LIB_CP" -d "$CLASSES_DIR" $(find "$ROOT_DIR/src" -name '*.java')
+
+echo "---- Build fdmconfig-full.jar"
+{
+    echo "Main-Class: $MAIN_CLASS"
+    echo "Class-Path: $(cd "$OUT_DIR" && ls lib/*.jar | tr '\n' ' ')"
+} > "$OUT_DIR/full-manifest.txt"
+jar --create --file "$OUT_DIR/fdmconfig-full.jar" --manifest "$OUT_DIR/full-manifest.txt" -C "$CLASSES_DIR" .
+
+echo "---- Training run (class loading trace)"
+java -Xshare:off -Xlog:class+load=info:file="$OUT_DIR/class-load.log" \
+    -jar "$OUT_DIR/fdmconfig-full.jar" "${SIM_ARGS[@]}" > "$OUT_DIR/training-run.log" 2>&1 || true
+
+# Loaded class names, in '/' form, that came from one of the library jars
+grep 'source: file:' "$OUT_DIR/class-load.log" | grep '/lib/' \
+    | sed -E 's/^.*\] ([^ ]+) source:.*$/\1/' | tr '.' '/' | sort -u > "$OUT_DIR/loaded-classes.txt"
+
+if [ ! -s "$OUT_DIR/loaded-classes.txt" ]; then
+    echo "[Error] Training run did not load any library class, check $OUT_DIR/training-run.log"
+    exit 1
+fi
+
+if ! grep -q 'Trigger Reconfigure HA operation on all clustered hosts' "$OUT_DIR/training-run.log"; then
+    echo "[Error] Training run did not reach the reconfigure path, check $OUT_DIR/training-run.log"
+    if grep -q '^\[PRE-FLIGHT\]' "$OUT_DIR/training-run.log"; then
+        # pre-flight issues of the simulator cluster, as reported by the utility
+        awk '/^\[PRE-FLIGHT\]/ { show = 1; print; next } show && /^---- / { print; next } { show = 0 }' \
+            "$OUT_DIR/training-run.log" | sed 's/^/        /'
+    fi
+    echo "        The simulator cluster needs HA enabled, an HA agent state on all hosts, at least 3 accessible shared"
+    echo "        datastores and no advanced option set already (see the header of this script)"
+    exit 1
+fi
+
+echo "---- Build fdmconfig-slim.jar"
+cp -r "$CLASSES_DIR"/. "$SLIM_DIR"
+for libJar in $LIB_JARS; do
+    # keep a loaded class together with its nested classes, plus everything matching the reflective keep pattern
+    unzip -Z1 "$libJar" | grep '\.class$' | awk -v keep="$REFLECTIVE_KEEP_PATTERN" '
+        NR == FNR { loaded[$0] = 1; next }
+        { outer = $0; sub(/\.class$/, "", outer); sub(/\$.*$/, "", outer) }
+        (outer in loaded) || ($0 ~ keep) { print }
+    ' "$OUT_DIR/loaded-classes.txt" - > "$OUT_DIR/keep-entries.txt"
+    if [ ! -s "$OUT_DIR/keep-entries.txt" ]; then
+        echo "No class of $(basename "$libJar") loaded during the training run, not packaged"
+        continue
+    fi
+    (cd "$SLIM_DIR" && xargs -r -a "$OUT_DIR/keep-entries.txt" unzip -q -o "$libJar")
+    # the library licences have to travel with the redistributed classes, one directory per library
+    licenseDir=$SLIM_DIR/META-INF/licenses/$(basename "$libJar" .jar)
+    mkdir -p "$licenseDir"
+    unzip -Z1 "$libJar" | awk '!/\.class$/ && tolower($0) ~ /(^|\/)(license|notice)[^\/]*$/' \
+        | xargs -r unzip -q -o -j "$libJar" -d "$licenseDir"
+done
+echo "Main-Class: $MAIN_CLASS" > "$OUT_DIR/slim-manifest.txt"
+jar --create --file "$OUT_DIR/fdmconfig-slim.jar" --manifest "$OUT_DIR/slim-manifest.txt" -C "$SLIM_DIR" .
+
+echo "---- Training run (AppCDS archive)"
+java -XX:ArchiveClassesAtExit="$OUT_DIR/fdmconfig.jsa" \
+    -jar "$OUT_DIR/fdmconfig-slim.jar" "${SIM_ARGS[@]}" >> "$OUT_DIR/training-run.log" 2>&1 || true
+
+NATIVE_BIN=""
+if command -v native-image > /dev/null 2>&1; then
+    echo "---- Training run (native-image reflection metadata)"
+    java -agentlib:native-image-agent=config-output-dir="$NATIVE_CONFIG_DIR" \
+        -jar "$OUT_DIR/fdmconfig-slim.jar" "${SIM_ARGS[@]}" >> "$OUT_DIR/training-run.log" 2>&1 || true
+
+    # Same reason as REFLECTIVE_KEEP_PATTERN : the agent only records types seen in one run. Register every vim25
+    # data object/fault and managed object class, native-image merges the agent output on top of it.
+    echo "---- Generate reflection metadata for vim25 types"
+    unzip -Z1 "$(ls "$LIB_DIR"/vijava*.jar)" | grep -E '^com/vmware/vim25/(mo/)?[^/]*\.class$' | sort \
+        | sed -e 's/\.class$//' -e 's|/|.|g' | awk '
+            BEGIN { print "[" }
+            {
+                if (NR > 1) { print "," }
+                printf "  { \"name\": \"%s\", \"allDeclaredConstructors\": true, \"allPublicConstructors\": true,", $0
+                printf " \"allDeclaredMethods\": true, \"allPublicMethods\": true, \"allDeclaredFields\": true,"
+                printf " \"allPublicFields\": true }"
+            }
+            END { print ""; print "]" }
+        ' > "$NATIVE_VIM25_CONFIG_DIR/reflect-config.json"
+
+    echo "---- Build native image"
+    native-image --no-fallback --enable-url-protocols=http,https \
+        -H:ConfigurationFileDirectories="$NATIVE_VIM25_CONFIG_DIR,$NATIVE_CONFIG_DIR" \
+        -jar "$OUT_DIR/fdmconfig-slim.jar" -o "$OUT_DIR/fdmconfig"
+    NATIVE_BIN=$OUT_DIR/fdmconfig
+else
+    echo "---- native-image not found on PATH, skip GraalVM native image"
+fi
+
+# Prints the median "Startup to login complete" over TIMING_RUNS runs of the given command
+measure()
+{
+    local label=$1
+    shift
+    local samples=()
+    for ((run = 0; run < TIMING_RUNS; run++)); do
+        local ms
+        ms=$("$@" "${SIM_ARGS[@]}" --timing 2>&1 | sed -n -E 's/^\[Timing\] Startup to login complete: ([0-9]+) ms$/\1/p')
+        if [ -n "$ms" ]; then
+            samples+=("$ms")
+        fi
+    done
+    if [ ${#samples[@]} -eq 0 ]; then
+        printf "%-28s %s\n" "$label" "no timing reported"
+    else
+        local median
+        median=$(printf '%s\n' "${samples[@]}" | sort -n | awk '{ a[NR] = $1 } END { print a[int((NR + 1) / 2)] }')
+        printf "%-28s %8s ms  (median of %d runs)\n" "$label" "$median" "${#samples[@]}"
+    fi
+}
+
+echo
+echo "------------------ Startup to login complete ------------------"
+measure "fdmconfig-full.jar" java -jar "$OUT_DIR/fdmconfig-full.jar"
+measure "fdmconfig-slim.jar" java -jar "$OUT_DIR/fdmconfig-slim.jar"
+measure "fdmconfig-slim.jar + AppCDS" java -XX:SharedArchiveFile="$OUT_DIR/fdmconfig.jsa" -jar "$OUT_DIR/fdmconfig-slim.jar"
+if [ -n "$NATIVE_BIN" ]; then
+    measure "native image" "$NATIVE_BIN"
+fi
+echo "----------------------------------------------------------------"
+echo "Sizes:"
+ls -l "$ROOT_DIR/Runnable-Jar/fdmconfig.jar" "$OUT_DIR"/*.jar "$OUT_DIR"/*.jsa ${NATIVE_BIN:+"$NATIVE_BIN"} 2>/dev/null \
+    | awk '{ printf "  %-60s %10d bytes\n", $9, $5 }'
@@ -2,6 +2,8 @@
  * Utility class to add HA Cluster Advanced option and reconfigure HA on all clustered hosts - for changes
  * to take effect. And restore the HA cluster configuration, incase there is a failure.
  *
+ * -- Pre-flight checks on the cluster, before making any change: shared heartbeat datastores, HA agent state on
+ *    hosts and privileges
  * -- Add advanced option 'das.heartbeatDsPerHost' with value '3' [HA chooses by default 2 heartbeat datastores for
  *  each host in an HA cluster. This option can be used to increase the number to a value in the range of 2 to 5 inclusive.]
  * -- Reconfigure HA on all Clustered hosts, in a MULTI THREADED fashion. Wait until all reconfigure HA tasks complete
@@ -38,9 +40,13 @@
 
 package reconfigha;
 
+import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -48,16 +54,25 @@ import com.vmware.vim25.ClusterConfigInfo;
 import com.vmware.vim25.ClusterConfigInfoEx;
 import com.vmware.vim25.ClusterConfigSpecEx;
 import com.vmware.vim25.ClusterDasConfigInfo;
+import com.vmware.vim25.ClusterDasFdmAvailabilityState;
+import com.vmware.vim25.ClusterDasFdmHostState;
+import com.vmware.vim25.EntityPrivilege;
 import com.vmware.vim25.HostRuntimeInfo;
 import com.vmware.vim25.HostSystemConnectionState;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.MethodNotFound;
+import com.vmware.vim25.NotSupported;
 import com.vmware.vim25.OptionValue;
+import com.vmware.vim25.PrivilegeAvailability;
 import com.vmware.vim25.TaskInfoState;
 import com.vmware.vim25.mo.ClusterComputeResource;
+import com.vmware.vim25.mo.Datastore;
 import com.vmware.vim25.mo.HostSystem;
 import com.vmware.vim25.mo.InventoryNavigator;
 import com.vmware.vim25.mo.ManagedEntity;
 import com.vmware.vim25.mo.ServiceInstance;
 import com.vmware.vim25.mo.Task;
+import com.vmware.vim25.mo.util.PropertyCollectorUtil;
 
 public class FDMConfigUpdater
 {
@@ -68,6 +83,14 @@ public class FDMConfigUpdater
     private ServiceInstance si;
     private boolean cluAdvOpAdded;
     private String clusterName;
+    private boolean reportTiming;
+
+    // Record/Replay of the SOAP session
+    private String recordSessionFile;
+    private String replaySessionFile;
+    private String replayTimeScaleStr;
+    private double replayTimeScale = 1.0;
+    private SoapSessionTransport sessionTransport;
 
     // VC inventory related objects
     public static final String DC_MOR_TYPE = "Datacenter";
@@ -75,12 +98,19 @@ public class FDMConfigUpdater
     public static final String VC_ROOT_TYPE = "VCRoot";
     public static final String HOST_MOR_TYPE = "HostSystem";
     public static final String VM_MOR_TYPE = "VirtualMachine";
+    public static final String DS_MOR_TYPE = "Datastore";
 
     // FDM Advanced option
     private final String HA_ADV_CONFIG_OPTION = "das.heartbeatDsPerHost";
-    private final String HA_ADV_CONFIG_VAL = "3";
+    // Heartbeat datastores per host, "das.heartbeatDsPerHost" accepts a value in the range of 2 to 5 inclusive
+    private static final int HA_HB_DS_PER_HOST = 3;
+    private final String HA_ADV_CONFIG_VAL = String.valueOf(HA_HB_DS_PER_HOST);
     private boolean haAdvOptionAlreadyExists;
 
+    // Pre-flight checks
+    private static final String CLUSTER_EDIT_PRIVILEGE = "Host.Inventory.EditCluster";
+    private static final String HOST_RECONFIG_HA_PRIVILEGE = "Host.Config.Connection";
+
     /**
      * Constructor
      */
@@ -120,6 +150,17 @@ public class FDMConfigUpdater
             } else if (cmdProps[i].equals("--clusterName")) {
                 clusterName = cmdProps[i + 1];
                 System.out.println("Cluster Name:" + clusterName);
+            } else if (cmdProps[i].equals("--timing")) {
+                reportTiming = true;
+            } else if (cmdProps[i].equals("--recordSession")) {
+                recordSessionFile = cmdProps[i + 1];
+                System.out.println("Record SOAP session to:" + recordSessionFile);
+            } else if (cmdProps[i].equals("--replaySession")) {
+                replaySessionFile = cmdProps[i + 1];
+                System.out.println("Replay SOAP session from:" + replaySessionFile);
+            } else if (cmdProps[i].equals("--replayTimeScale")) {
+                replayTimeScaleStr = cmdProps[i + 1];
+                System.out.println("Replay time scale:" + replayTimeScaleStr);
             }
         }
         System.out.println("-------------------------------------------------------------------\n");
@@ -132,7 +173,9 @@ public class FDMConfigUpdater
     validateProperties()
     {
         boolean val = false;
-        if (vsphereIp != null) {
+        if (!validateSessionOptions()) {
+            RunApp.usage();
+        } else if (vsphereIp != null) {
             url = "https://" + vsphereIp + "/sdk";
 
             try {
@@ -160,6 +203,34 @@ public class FDMConfigUpdater
         return val;
     }
 
+    /**
+     * Validate Record/Replay of the SOAP session related options
+     */
+    private boolean
+    validateSessionOptions()
+    {
+        if (recordSessionFile != null && replaySessionFile != null) {
+            System.err.println("--recordSession and --replaySession can not be used together");
+            return false;
+        }
+        if (replayTimeScaleStr != null) {
+            if (replaySessionFile == null) {
+                System.err.println("--replayTimeScale can only be used along with --replaySession");
+                return false;
+            }
+            try {
+                replayTimeScale = Double.parseDouble(replayTimeScaleStr);
+            } catch (NumberFormatException e) {
+                replayTimeScale = -1;
+            }
+            if (!(replayTimeScale >= 0) || Double.isInfinite(replayTimeScale)) {
+                System.err.println("Invalid --replayTimeScale: " + replayTimeScaleStr + ", must be a number >= 0");
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Login method to VC/ESXi
      */
@@ -167,7 +238,34 @@ public class FDMConfigUpdater
     loginTovSphere(String url)
     {
         try {
-            si = new ServiceInstance(new URL(url), userName, password, true);
+            if (replaySessionFile != null) {
+                sessionTransport = SoapSessionTransport.replayer(new File(replaySessionFile), replayTimeScale);
+                System.out.println("Loaded " + sessionTransport.getExchangeCount() + " recorded SOAP exchanges from: "
+                    + replaySessionFile);
+                si = sessionTransport.connect(new URL(url), userName, password);
+            } else if (recordSessionFile != null) {
+                sessionTransport = SoapSessionTransport.recorder(new File(recordSessionFile));
+                // Save the recording also when the run gets interrupted (e.g. Ctrl-C on a long run)
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    @Override
+                    public void run()
+                    {
+                        finishSessionRecording();
+                    }
+                });
+                si = sessionTransport.connect(new URL(url), userName, password);
+            } else {
+                si = new ServiceInstance(new URL(url), userName, password, true);
+            }
+            // Taken once login completes, so that the class loading done while sending the first requests
+            // (HTTP/TLS stack, vijava SOAP client, vim25 types) is part of the figure. JVM uptime is only looked up
+            // with --timing, and the time spent loading java.lang.management is taken off again
+            if (reportTiming) {
+                long loginDoneNanos = System.nanoTime();
+                long uptimeMs = ManagementFactory.getRuntimeMXBean().getUptime();
+                long loginDoneMs = uptimeMs - (System.nanoTime() - loginDoneNanos) / 1000000L;
+                System.out.println("[Timing] Startup to login complete: " + loginDoneMs + " ms");
+            }
         } catch (Exception e) {
             System.out.println("Caught exception while logging into vSphere server");
             e.printStackTrace();
@@ -175,6 +273,26 @@ public class FDMConfigUpdater
         return si;
     }
 
+    /**
+     * Complete the SOAP session recording, if one is in progress
+     */
+    void
+    finishSessionRecording()
+    {
+        if (sessionTransport != null && sessionTransport.isRecordMode()) {
+            try {
+                if (sessionTransport.close()) {
+                    System.out.println("Recorded " + sessionTransport.getExchangeCount() + " SOAP exchanges to: "
+                        + sessionTransport.getSessionFile());
+                }
+            } catch (Exception e) {
+                System.err.println("Caught exception while saving recorded SOAP session: "
+                    + sessionTransport.getSessionFile());
+                e.printStackTrace();
+            }
+        }
+    }
+
     /**
      * Method prints out possible reasons for failed login
      */
@@ -211,6 +329,13 @@ public class FDMConfigUpdater
             oriClusterInfoObj.clusterConfigInfo = clusterConfigInfoObj;
             oriClusterInfoObj.ccr = haCcr;
 
+            // Validate upfront, a failure after the cluster is reconfigured needs a full rollback on all hosts.
+            // Nothing gets changed if the advanced option is already there, so no checks in that case
+            if (!hasHAAdvOption(clusterConfigInfoObj) && !preflightCheckCluster(haCluster, clusteredHosts)) {
+                System.err.println("[ALERT] Pre-flight checks failed, no change made to Cluster: " + clusterName);
+                return clusterConfigSuccess;
+            }
+
             try {
                 System.out.println("\n******************************************************************************");
                 System.out.println("\t\t\t CLUSTER : " + clusterName);
@@ -257,6 +382,202 @@ public class FDMConfigUpdater
         return clusterConfigSuccess;
     }
 
+    /**
+     * vijava rethrows SOAP faults as a RemoteException, with only the fault class name in its message
+     */
+    static boolean
+    isFault(Exception e, Class<? extends Exception> faultType)
+    {
+        if (faultType.isInstance(e)) {
+            return true;
+        }
+        String msg = e.getMessage();
+        return msg != null && (msg.endsWith(faultType.getName()) || msg.contains(faultType.getName() + ":"));
+    }
+
+    /**
+     * Pre-flight checks on the target cluster, before making any change - shared datastores for heartbeating,
+     * HA agent state on hosts and privileges of the logged in user. Host and datastore properties are read with
+     * a single property collector call each, and the privilege check runs concurrently with these reads
+     */
+    boolean
+    preflightCheckCluster(ManagedEntity cluster, List<HostSystem> hosts)
+    {
+        System.out.println("\nRun pre-flight checks on Cluster: " + clusterName + ", before making any change ...");
+        List<String> issues = new ArrayList<String>();
+
+        ThreadPrivilegeCheck privCheckThreadObj = new ThreadPrivilegeCheck(cluster, hosts);
+        privCheckThreadObj.start();
+
+        Map<String, String> hostNames = new HashMap<String, String>();
+        try {
+            checkHostsNDatastores(hosts, hostNames, issues);
+        } catch (Exception e) {
+            issues.add("Caught exception while checking hosts and datastores: " + e);
+        }
+
+        try {
+            privCheckThreadObj.join();
+            if (privCheckThreadObj.checkFailure != null) {
+                issues.add("Caught exception while checking privileges: " + privCheckThreadObj.checkFailure);
+            }
+            for (Map.Entry<String, String> missingPriv : privCheckThreadObj.missingPrivileges.entrySet()) {
+                String entityName = hostNames.containsKey(missingPriv.getKey()) ? hostNames.get(missingPriv.getKey())
+                    : clusterName;
+                issues.add("[" + entityName + "] Missing privilege: " + missingPriv.getValue());
+            }
+        } catch (InterruptedException e) {
+            issues.add("Interrupted while waiting for privilege checks to complete");
+        }
+
+        if (issues.size() > 0) {
+            System.err.println("[PRE-FLIGHT] Cluster: " + clusterName + " is not ready");
+            for (String issue : issues) {
+                System.err.println("---- " + issue);
+            }
+            return false;
+        }
+        System.out.println("Pre-flight checks passed on Cluster: " + clusterName);
+        return true;
+    }
+
+    /**
+     * HA agent state on all hosts, and datastores accessible by all hosts - for heartbeating.
+     * Fills in host MOR value to host name map
+     */
+    private void
+    checkHostsNDatastores(List<HostSystem> hosts, Map<String, String> hostNames, List<String> issues)
+        throws Exception
+    {
+        HostSystem[] allHostSys = hosts.toArray(new HostSystem[hosts.size()]);
+        Hashtable<?, ?>[] allHostProps = PropertyCollectorUtil.retrieveProperties(allHostSys, HOST_MOR_TYPE,
+            new String[] { "name", "runtime.dasHostState", "datastore" });
+
+        Map<String, ManagedObjectReference> sharedDsMap = null;
+
+        for (int i = 0; i < allHostSys.length; i++) {
+            Hashtable<?, ?> hostProps = allHostProps[i];
+            if (hostProps == null) {
+                issues.add("[" + allHostSys[i].getMOR().get_value() + "] Unable to retrieve host properties");
+                continue;
+            }
+            String hostName = String.valueOf(hostProps.get("name"));
+            hostNames.put(allHostSys[i].getMOR().get_value(), hostName);
+
+            Object dasHostState = hostProps.get("runtime.dasHostState");
+            if (!(dasHostState instanceof ClusterDasFdmHostState)) {
+                issues.add("[" + hostName + "] HA agent state is not available");
+            } else {
+                String fdmState = ((ClusterDasFdmHostState) dasHostState).getState();
+                if (!(ClusterDasFdmAvailabilityState.master.name().equals(fdmState)
+                    || ClusterDasFdmAvailabilityState.connectedToMaster.name().equals(fdmState)
+                    || ClusterDasFdmAvailabilityState.election.name().equals(fdmState))) {
+                    issues.add("[" + hostName + "] HA agent is in \"" + fdmState + "\" state");
+                }
+            }
+
+            // Retain datastores mounted on all hosts so far
+            Map<String, ManagedObjectReference> hostDsMap = new LinkedHashMap<String, ManagedObjectReference>();
+            Object hostDatastores = hostProps.get("datastore");
+            if (hostDatastores instanceof ManagedObjectReference[]) {
+                for (ManagedObjectReference dsMor : (ManagedObjectReference[]) hostDatastores) {
+                    hostDsMap.put(dsMor.get_value(), dsMor);
+                }
+            }
+            if (sharedDsMap == null) {
+                sharedDsMap = hostDsMap;
+            } else {
+                sharedDsMap.keySet().retainAll(hostDsMap.keySet());
+            }
+        }
+
+        int accessibleSharedDsCnt = 0;
+        if (sharedDsMap != null && sharedDsMap.size() > 0) {
+            List<Datastore> sharedDs = new ArrayList<Datastore>();
+            for (ManagedObjectReference dsMor : sharedDsMap.values()) {
+                sharedDs.add(new Datastore(si.getServerConnection(), dsMor));
+            }
+            Hashtable<?, ?>[] allDsProps = PropertyCollectorUtil.retrieveProperties(
+                sharedDs.toArray(new Datastore[sharedDs.size()]), DS_MOR_TYPE,
+                new String[] { "summary.accessible" });
+            for (Hashtable<?, ?> dsProps : allDsProps) {
+                if (dsProps != null && Boolean.TRUE.equals(dsProps.get("summary.accessible"))) {
+                    ++accessibleSharedDsCnt;
+                }
+            }
+        }
+        if (accessibleSharedDsCnt < HA_HB_DS_PER_HOST) {
+            issues.add("Found " + accessibleSharedDsCnt + " accessible datastore(s) shared by all hosts, "
+                + HA_HB_DS_PER_HOST + " required for \"" + HA_ADV_CONFIG_OPTION + "\"");
+        }
+    }
+
+    /**
+     * Class to check, in threaded fashion, the privileges needed to reconfigure the cluster and reconfigure HA on
+     * its hosts - in a single call. Collects entity MOR value to missing privilege
+     */
+    private class ThreadPrivilegeCheck extends Thread
+    {
+        ManagedEntity cluster;
+        List<HostSystem> hosts;
+        Map<String, String> missingPrivileges = new HashMap<String, String>();
+        Exception checkFailure;
+
+        ThreadPrivilegeCheck(ManagedEntity cluster, List<HostSystem> hosts) {
+            this.cluster = cluster;
+            this.hosts = hosts;
+        }
+
+        @Override
+        public void run()
+        {
+            ManagedEntity[] allEntities = new ManagedEntity[hosts.size() + 1];
+            allEntities[0] = cluster;
+            for (int i = 0; i < hosts.size(); i++) {
+                allEntities[i + 1] = hosts.get(i);
+            }
+
+            String sessionKey;
+            EntityPrivilege[] allEntityPrivs;
+            try {
+                sessionKey = si.getSessionManager().getCurrentSession().getKey();
+            } catch (Exception e) {
+                checkFailure = e;
+                return;
+            }
+            try {
+                allEntityPrivs = si.getAuthorizationManager().hasPrivilegeOnEntities(allEntities, sessionKey,
+                    new String[] { CLUSTER_EDIT_PRIVILEGE, HOST_RECONFIG_HA_PRIVILEGE });
+            } catch (Exception e) {
+                // HasPrivilegeOnEntities is available from vSphere 5.5 onwards, only skip when the server
+                // does not know it. Anything else (network error, no permission, ...) fails the pre-flight
+                if (isFault(e, MethodNotFound.class) || isFault(e, NotSupported.class)) {
+                    System.out.println("Privilege checks not supported on Cluster: " + clusterName
+                        + ", skip privilege checks");
+                } else {
+                    checkFailure = e;
+                }
+                return;
+            }
+
+            for (EntityPrivilege entityPriv : allEntityPrivs) {
+                boolean isCluster = CLUSTER_COMPRES_MOR_TYPE.equals(entityPriv.getEntity().getType());
+                String requiredPriv = isCluster ? CLUSTER_EDIT_PRIVILEGE : HOST_RECONFIG_HA_PRIVILEGE;
+                boolean granted = false;
+                if (entityPriv.getPrivAvailability() != null) {
+                    for (PrivilegeAvailability privAvail : entityPriv.getPrivAvailability()) {
+                        if (requiredPriv.equals(privAvail.getPrivId()) && privAvail.isIsGranted()) {
+                            granted = true;
+                        }
+                    }
+                }
+                if (!granted) {
+                    missingPrivileges.put(entityPriv.getEntity().get_value(), requiredPriv);
+                }
+            }
+        }
+    }
+
     /**
      * Restore Cluster settings (as it was before start of the test) and reconfigure HA on hosts
      */
@@ -372,6 +693,24 @@ public class FDMConfigUpdater
         return allClusHostsMap;
     }
 
+    /**
+     * Check if cluster already has advanced option "das.heartbeatDsPerHost" with value "3"
+     */
+    private boolean
+    hasHAAdvOption(ClusterConfigInfoEx cluConfigInfo)
+    {
+        OptionValue[] advancedOptions = cluConfigInfo.getDasConfig().getOption();
+        if (advancedOptions != null) {
+            for (OptionValue advancedOption : advancedOptions) {
+                if (HA_ADV_CONFIG_OPTION.equals(advancedOption.getKey())
+                    && HA_ADV_CONFIG_VAL.equals(advancedOption.getValue())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     /**
      * Add advanced option "das.heartbeatDsPerHost" with value "3"
      */
@@ -44,7 +44,13 @@ public class RunApp
     public static void usage()
     {
         System.out.println(
-            "Usage: java -jar fdmconfig.jar --vsphereip <vc/esxi server IP> --username <uname> --password <pwd> --clusterName <cluster name>");
+            "Usage: java -jar fdmconfig.jar --vsphereip <vc/esxi server IP> --username <uname> --password <pwd> --clusterName <cluster name> [--timing]"
+                + " [--recordSession <file> | --replaySession <file> [--replayTimeScale <factor>]]");
+        System.out.println("--timing : report time taken from JVM startup until login to vSphere completes");
+        System.out.println("--recordSession : record all SOAP requests/responses, with timing, to the given file"
+            + " (credentials are scrubbed)");
+        System.out.println("--replaySession : serve SOAP responses offline from a recorded file, with the recorded"
+            + " latencies multiplied by --replayTimeScale (default 1.0)");
         System.out.println("\nExample : To apply HA configuration on a specific cluster");
         System.out.println(
             "\"java -jar fdmconfig.jar --vsphereip 10.1.2.3 --username adminUser --password dummy --clusterName TestCluster\"");
@@ -61,11 +67,15 @@ public class RunApp
         // Read command line arguments
         if (args.length > 0 && args.length > 6) {
             FDMConfigUpdater fdmConfigSample = new FDMConfigUpdater(args);
-            if (fdmConfigSample.validateProperties()) {
-                if(fdmConfigSample.applyHAAdvOptionClusters()) {
-                    System.out
-                    .println("Successful in adding Advanced option to HA cluster and reconfiguring HA on all cluster hosts");
+            try {
+                if (fdmConfigSample.validateProperties()) {
+                    if(fdmConfigSample.applyHAAdvOptionClusters()) {
+                        System.out
+                        .println("Successful in adding Advanced option to HA cluster and reconfiguring HA on all cluster hosts");
+                    }
                 }
+            } finally {
+                fdmConfigSample.finishSessionRecording();
             }
         } else {
             usage();
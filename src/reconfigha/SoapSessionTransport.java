@@ -0,0 +1,604 @@
+/**
+ * Record and replay transport for the vSphere SOAP session used by the HA Cluster reconfig utility
+ * -- RECORD mode : every SOAP request/response exchanged with vCenter Server is captured, along with its start time
+ *    and latency, into a compact (gzip) session file. Login credentials, user session details and session
+ *    cookies are scrubbed.
+ * -- REPLAY mode : SOAP responses are served back from the session file, without any network access, after
+ *    waiting for the originally recorded latency (optionally time-scaled)
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package reconfigha;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.vmware.vim25.ServiceContent;
+import com.vmware.vim25.UserSession;
+import com.vmware.vim25.VimPortType;
+import com.vmware.vim25.mo.ServerConnection;
+import com.vmware.vim25.mo.ServiceInstance;
+
+public class SoapSessionTransport extends URLStreamHandler
+{
+    // Session file layout : MAGIC, VERSION and then one entry per SOAP exchange, until end of file
+    private static final String SESSION_FILE_MAGIC = "FDMSOAPSESSION";
+    private static final int SESSION_FILE_VERSION = 1;
+    private static final String SCRUBBED = "***";
+    private static final String SET_COOKIE_HEADER = "Set-Cookie";
+    private static final Pattern USER_SESSION_PATTERN = Pattern.compile(
+        "<LoginResponse[^>]*>.*?</LoginResponse>|<val xsi:type=\"UserSession\">.*?</val>", Pattern.DOTALL);
+
+    private final boolean recordMode;
+    private final File sessionFile;
+    private final double replayTimeScale;
+    private final long sessionStartMs;
+
+    // RECORD mode
+    private DataOutputStream recordOut;
+    private int recordedExchangeCnt;
+
+    // REPLAY mode : recorded exchanges, keyed by scrubbed request body, in the order they were recorded
+    private final Map<String, LinkedList<SoapExchange>> replayExchanges =
+        new HashMap<String, LinkedList<SoapExchange>>();
+
+    /**
+     * Constructor
+     */
+    private SoapSessionTransport(boolean recordMode, File sessionFile, double replayTimeScale)
+    {
+        this.recordMode = recordMode;
+        this.sessionFile = sessionFile;
+        this.replayTimeScale = replayTimeScale;
+        this.sessionStartMs = System.currentTimeMillis();
+    }
+
+    /**
+     * Transport which records all SOAP exchanges of the session into the given file
+     */
+    static SoapSessionTransport
+    recorder(File sessionFile) throws IOException
+    {
+        SoapSessionTransport transport = new SoapSessionTransport(true, sessionFile, 1.0);
+        transport.recordOut = new DataOutputStream(
+            new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(sessionFile))));
+        transport.recordOut.writeUTF(SESSION_FILE_MAGIC);
+        transport.recordOut.writeInt(SESSION_FILE_VERSION);
+        return transport;
+    }
+
+    /**
+     * Transport which serves SOAP responses from the given session file. Recorded latencies are multiplied
+     * by the time scale (1.0 - original timing, 0.5 - twice as fast, 0 - no wait at all)
+     */
+    static SoapSessionTransport
+    replayer(File sessionFile, double timeScale) throws IOException
+    {
+        SoapSessionTransport transport = new SoapSessionTransport(false, sessionFile, timeScale);
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new GZIPInputStream(new FileInputStream(sessionFile))));
+        try {
+            if (!SESSION_FILE_MAGIC.equals(in.readUTF()) || in.readInt() != SESSION_FILE_VERSION) {
+                throw new IOException("Not a supported SOAP session file: " + sessionFile);
+            }
+            while (true) {
+                SoapExchange exchange;
+                try {
+                    exchange = SoapExchange.readFrom(in);
+                } catch (EOFException e) {
+                    break;
+                }
+                String key = new String(exchange.request, "UTF-8");
+                LinkedList<SoapExchange> exchanges = transport.replayExchanges.get(key);
+                if (exchanges == null) {
+                    exchanges = new LinkedList<SoapExchange>();
+                    transport.replayExchanges.put(key, exchanges);
+                }
+                exchanges.add(exchange);
+                ++transport.recordedExchangeCnt;
+            }
+        } finally {
+            in.close();
+        }
+        return transport;
+    }
+
+    boolean
+    isRecordMode()
+    {
+        return recordMode;
+    }
+
+    File
+    getSessionFile()
+    {
+        return sessionFile;
+    }
+
+    /**
+     * Number of SOAP exchanges recorded so far (RECORD mode) or loaded from the session file (REPLAY mode)
+     */
+    synchronized int
+    getExchangeCount()
+    {
+        return recordedExchangeCnt;
+    }
+
+    /**
+     * Login to vSphere, with all SOAP traffic of the session going through this transport.
+     * Mirrors what ServiceInstance(URL, String, String, boolean) does, except for the transport used: ServiceContent
+     * is retrieved again once the SOAP action is set for the API version, and that one is kept for the session
+     */
+    ServiceInstance
+    connect(URL url, String userName, String password) throws IOException
+    {
+        VimPortType vimService = new VimPortType(url.toString(), true);
+        vimService.getWsc().setVimNameSpace(ServiceInstance.VIM25_NAMESPACE);
+        vimService.getWsc().setBaseUrl(new URL(null, url.toString(), this));
+
+        ServerConnection serverConnection = new ServerConnection(url, vimService, null);
+        ServiceInstance sessionSi = new ServiceInstance(serverConnection);
+        setOnServerConnection(serverConnection, "setServiceInstance", ServiceInstance.class, sessionSi);
+
+        ServiceContent serviceContent = sessionSi.getServiceContent();
+        if (serviceContent == null) {
+            throw new RemoteException("Unable to retrieve ServiceContent from vSphere: " + url);
+        }
+        vimService.getWsc().setSoapActionOnApiVersion(serviceContent.getAbout().getApiVersion());
+        setServiceContent(sessionSi, vimService.retrieveServiceContent(sessionSi.getMOR()));
+        UserSession userSession = sessionSi.getSessionManager().login(userName, password, null);
+        setOnServerConnection(serverConnection, "setUserSession", UserSession.class, userSession);
+
+        return sessionSi;
+    }
+
+    /**
+     * ServiceInstance and UserSession setters of ServerConnection are package-private. ServiceInstance constructors
+     * use them, set them the same way here (inventory navigation needs the ServiceInstance, getUsername() the session)
+     */
+    private static <T> void
+    setOnServerConnection(ServerConnection serverConnection, String setterName, Class<T> valueType, T value)
+        throws IOException
+    {
+        try {
+            Method setter = ServerConnection.class.getDeclaredMethod(setterName, valueType);
+            setter.setAccessible(true);
+            setter.invoke(serverConnection, value);
+        } catch (Exception e) {
+            throw new IOException("Unable to call ServerConnection." + setterName + "() : " + e, e);
+        }
+    }
+
+    /**
+     * ServiceInstance keeps its ServiceContent in a private field, without a setter. ServiceInstance constructors
+     * assign it directly, set it the same way here
+     */
+    private static void
+    setServiceContent(ServiceInstance serviceInstance, ServiceContent serviceContent) throws IOException
+    {
+        try {
+            Field serviceContentField = ServiceInstance.class.getDeclaredField("serviceContent");
+            serviceContentField.setAccessible(true);
+            serviceContentField.set(serviceInstance, serviceContent);
+        } catch (Exception e) {
+            throw new IOException("Unable to set ServiceInstance.serviceContent : " + e, e);
+        }
+    }
+
+    /**
+     * Finish the session. In RECORD mode, flushes and closes the session file.
+     * Returns false if there was nothing left to close (REPLAY mode, or already closed)
+     */
+    synchronized boolean
+    close() throws IOException
+    {
+        if (recordOut == null) {
+            return false;
+        }
+        try {
+            recordOut.close();
+        } finally {
+            recordOut = null;
+        }
+        return true;
+    }
+
+    @Override
+    protected URLConnection
+    openConnection(URL u) throws IOException
+    {
+        if (recordMode) {
+            // URL created without a handler, gets the default (network) handler for the protocol
+            return new RecordingConnection(u, (HttpURLConnection) new URL(u.toString()).openConnection());
+        }
+        return new ReplayConnection(u);
+    }
+
+    /**
+     * Replace login credentials and session key (e.g. HasPrivilegeOnEntities) in the SOAP request body
+     */
+    static String
+    scrubRequest(String soapRequest)
+    {
+        return soapRequest.replaceAll("<userName>[^<]*</userName>", "<userName>" + SCRUBBED + "</userName>")
+            .replaceAll("<password>[^<]*</password>", "<password>" + SCRUBBED + "</password>")
+            .replaceAll("<sessionId>[^<]*</sessionId>", "<sessionId>" + SCRUBBED + "</sessionId>");
+    }
+
+    /**
+     * Replace user name, full name and session key of the UserSession returned by Login and by reads of
+     * SessionManager.currentSession, in the SOAP response body
+     */
+    static String
+    scrubResponse(String soapResponse)
+    {
+        Matcher userSessionMatcher = USER_SESSION_PATTERN.matcher(soapResponse);
+        StringBuffer scrubbed = new StringBuffer();
+        while (userSessionMatcher.find()) {
+            String userSession = userSessionMatcher.group()
+                .replaceAll("<key>[^<]*</key>", "<key>" + SCRUBBED + "</key>")
+                .replaceAll("<userName>[^<]*</userName>", "<userName>" + SCRUBBED + "</userName>")
+                .replaceAll("<fullName>[^<]*</fullName>", "<fullName>" + SCRUBBED + "</fullName>");
+            userSessionMatcher.appendReplacement(scrubbed, Matcher.quoteReplacement(userSession));
+        }
+        userSessionMatcher.appendTail(scrubbed);
+        return scrubbed.toString();
+    }
+
+    /**
+     * Replace session cookie value, e.g. vmware_soap_session="52a3..."; Path=/; HttpOnly
+     */
+    static String
+    scrubCookie(String setCookie)
+    {
+        if (setCookie == null) {
+            return null;
+        }
+        return setCookie.replaceAll("^([^=]+)=(\"[^\"]*\"|[^;]*)", "$1=\"" + SCRUBBED + "\"");
+    }
+
+    private synchronized void
+    record(SoapExchange exchange)
+    {
+        if (recordOut == null) {
+            return;
+        }
+        try {
+            exchange.writeTo(recordOut);
+            ++recordedExchangeCnt;
+        } catch (IOException e) {
+            System.err.println("Caught exception while recording SOAP exchange to: " + sessionFile);
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized SoapExchange
+    nextReplayExchange(String scrubbedRequest) throws IOException
+    {
+        LinkedList<SoapExchange> exchanges = replayExchanges.get(scrubbedRequest);
+        if (exchanges == null || exchanges.isEmpty()) {
+            throw new IOException("No recorded response left in " + sessionFile + " for SOAP request: "
+                + scrubbedRequest);
+        }
+        // Keep serving the last recorded response, if the request gets repeated more often than recorded
+        return exchanges.size() > 1 ? exchanges.removeFirst() : exchanges.getFirst();
+    }
+
+    /**
+     * One recorded SOAP exchange
+     */
+    static class SoapExchange
+    {
+        long startOffsetMs; // since start of the session
+        long latencyMs;
+        int responseCode;
+        String setCookie;
+        byte[] request;
+        byte[] response;
+
+        void writeTo(DataOutputStream out) throws IOException
+        {
+            out.writeLong(startOffsetMs);
+            out.writeLong(latencyMs);
+            out.writeInt(responseCode);
+            out.writeUTF(setCookie == null ? "" : setCookie);
+            out.writeInt(request.length);
+            out.write(request);
+            out.writeInt(response.length);
+            out.write(response);
+        }
+
+        static SoapExchange readFrom(DataInputStream in) throws IOException
+        {
+            SoapExchange exchange = new SoapExchange();
+            exchange.startOffsetMs = in.readLong();
+            exchange.latencyMs = in.readLong();
+            exchange.responseCode = in.readInt();
+            exchange.setCookie = in.readUTF();
+            if (exchange.setCookie.length() == 0) {
+                exchange.setCookie = null;
+            }
+            exchange.request = new byte[in.readInt()];
+            in.readFully(exchange.request);
+            exchange.response = new byte[in.readInt()];
+            in.readFully(exchange.response);
+            return exchange;
+        }
+    }
+
+    /**
+     * Connection forwarding the SOAP request to vSphere and recording the exchange
+     */
+    private class RecordingConnection extends HttpURLConnection
+    {
+        private final HttpURLConnection delegate;
+        private final ByteArrayOutputStream requestBody = new ByteArrayOutputStream();
+        private byte[] errorBody;
+        private InputStream responseStream;
+
+        RecordingConnection(URL u, HttpURLConnection delegate) {
+            super(u);
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void setRequestMethod(String method) throws java.net.ProtocolException
+        {
+            super.setRequestMethod(method);
+            delegate.setRequestMethod(method);
+        }
+
+        @Override
+        public void setRequestProperty(String key, String value)
+        {
+            super.setRequestProperty(key, value);
+            delegate.setRequestProperty(key, value);
+        }
+
+        @Override
+        public void setConnectTimeout(int timeout)
+        {
+            super.setConnectTimeout(timeout);
+            delegate.setConnectTimeout(timeout);
+        }
+
+        @Override
+        public void setReadTimeout(int timeout)
+        {
+            super.setReadTimeout(timeout);
+            delegate.setReadTimeout(timeout);
+        }
+
+        @Override
+        public OutputStream getOutputStream()
+        {
+            return requestBody;
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException
+        {
+            if (responseStream != null) {
+                return responseStream;
+            }
+
+            SoapExchange exchange = new SoapExchange();
+            long startMs = System.currentTimeMillis();
+            exchange.startOffsetMs = startMs - sessionStartMs;
+            exchange.request = scrubRequest(requestBody.toString("UTF-8")).getBytes("UTF-8");
+
+            delegate.setDoOutput(true);
+            delegate.setDoInput(true);
+            OutputStream out = delegate.getOutputStream();
+            requestBody.writeTo(out);
+            out.close();
+
+            IOException failure = null;
+            byte[] body;
+            try {
+                body = readFully(delegate.getInputStream());
+            } catch (IOException e) {
+                // SOAP faults come back with HTTP 500, the body is in the error stream
+                failure = e;
+                InputStream err = delegate.getErrorStream();
+                body = err != null ? readFully(err) : new byte[0];
+            }
+            exchange.latencyMs = System.currentTimeMillis() - startMs;
+            exchange.responseCode = delegate.getResponseCode();
+            exchange.setCookie = scrubCookie(delegate.getHeaderField(SET_COOKIE_HEADER));
+            // the caller gets the actual response, only the recorded copy is scrubbed
+            exchange.response = scrubResponse(new String(body, "UTF-8")).getBytes("UTF-8");
+            record(exchange);
+
+            if (failure != null) {
+                errorBody = body;
+                throw failure;
+            }
+            responseStream = new ByteArrayInputStream(body);
+            return responseStream;
+        }
+
+        @Override
+        public InputStream getErrorStream()
+        {
+            return errorBody != null ? new ByteArrayInputStream(errorBody) : null;
+        }
+
+        @Override
+        public String getHeaderField(String name)
+        {
+            return delegate.getHeaderField(name);
+        }
+
+        @Override
+        public int getResponseCode() throws IOException
+        {
+            return delegate.getResponseCode();
+        }
+
+        @Override
+        public void connect() throws IOException
+        {
+            delegate.connect();
+        }
+
+        @Override
+        public void disconnect()
+        {
+            delegate.disconnect();
+        }
+
+        @Override
+        public boolean usingProxy()
+        {
+            return delegate.usingProxy();
+        }
+    }
+
+    /**
+     * Connection serving the SOAP response from the recorded session, without any network access
+     */
+    private class ReplayConnection extends HttpURLConnection
+    {
+        private final ByteArrayOutputStream requestBody = new ByteArrayOutputStream();
+        private SoapExchange exchange;
+
+        ReplayConnection(URL u) {
+            super(u);
+        }
+
+        @Override
+        public OutputStream getOutputStream()
+        {
+            return requestBody;
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException
+        {
+            if (exchange == null) {
+                exchange = nextReplayExchange(scrubRequest(requestBody.toString("UTF-8")));
+                long waitMs = (long) (exchange.latencyMs * replayTimeScale);
+                if (waitMs > 0) {
+                    try {
+                        Thread.sleep(waitMs);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+            if (exchange.responseCode >= HTTP_BAD_REQUEST) {
+                throw new IOException("Server returned HTTP response code: " + exchange.responseCode
+                    + " for URL: " + url + " (replayed)");
+            }
+            return new ByteArrayInputStream(exchange.response);
+        }
+
+        @Override
+        public InputStream getErrorStream()
+        {
+            if (exchange == null || exchange.responseCode < HTTP_BAD_REQUEST) {
+                return null;
+            }
+            return new ByteArrayInputStream(exchange.response);
+        }
+
+        @Override
+        public String getHeaderField(String name)
+        {
+            if (exchange != null && SET_COOKIE_HEADER.equalsIgnoreCase(name)) {
+                return exchange.setCookie;
+            }
+            return null;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException
+        {
+            return exchange != null ? exchange.responseCode : -1;
+        }
+
+        @Override
+        public void connect()
+        {
+            connected = true;
+        }
+
+        @Override
+        public void disconnect()
+        {
+            connected = false;
+        }
+
+        @Override
+        public boolean usingProxy()
+        {
+            return false;
+        }
+    }
+
+    private static byte[]
+    readFully(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        try {
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                bytes.write(buf, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes.toByteArray();
+    }
+}